@@ -0,0 +1,275 @@
+package com.sylvaingoutouly.cb;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.schedulers.Schedulers;
+import rx.subscriptions.Subscriptions;
+
+import com.couchbase.client.core.BackpressureException;
+import com.couchbase.client.java.error.TemporaryFailureException;
+
+/**
+ * Limiteur de concurrence adaptatif (AIMD) partagé par les requêteurs de la toolbox.
+ * Le nombre de requêtes simultanées autorisées augmente d'une unité par "fenêtre" de requêtes
+ * réussies et diminue de 10% lorsque la latence observée (délai jusqu'à la première réponse)
+ * dépasse le seuil ou que le service répond par un timeout / une erreur temporaire, qu'elle soit levée
+ * par le SDK ou renvoyée par le service N1QL (cf. {@link N1QLException#isOverload()}).
+ * Une requête qui obtient une place est lancée directement sur le thread appelant ; les requêtes au-delà
+ * de la limite sont mises en file d'attente et lancées, sur le {@link Scheduler} du limiteur, dès qu'une
+ * place se libère. Par défaut ce scheduler est un pool de threads dédié : un scheduler partagé (computation,
+ * threads IO du SDK) pourrait être celui d'un appelant bloqué en attente de sa propre requête.
+ *
+ * Deux instances partagées sont utilisées par défaut : {@link #KV} (cf. {@link Joint}) et {@link #QUERY}
+ * (cf. {@link N1QL}). Le seuil de latence de {@link #QUERY} (1s jusqu'à la première ligne) convient aux
+ * requêtes interactives : les requêtes lentes par nature (exports, scans complets) doivent utiliser leur propre
+ * limiteur, avec un seuil adapté, ou {@link #NONE}, afin de ne pas réduire la limite de tout le trafic N1QL.
+ * Le limiteur est configurable par requêteur, template, lot, {@link EntityView} et {@link ColumnBuffer}
+ * (méthodes <code>limiter(...)</code>), et le seuil des instances partagées par
+ * {@link #latencyThreshold(long, TimeUnit)}.
+ *
+ * @author sylvain
+ */
+public class AdaptiveLimiter {
+
+	private static final AtomicInteger THREADS = new AtomicInteger();
+
+	/** Scheduler par défaut des requêtes sorties de la file d'attente */
+	private static final Scheduler DISPATCH = Schedulers.from(Executors.newCachedThreadPool(r -> {
+		final Thread t = new Thread(r, "adaptive-limiter-" + THREADS.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}));
+
+	/** Limiteur des accès clé / valeur */
+	public static final AdaptiveLimiter KV = new AdaptiveLimiter(64, 8, 1024, 50, MILLISECONDS);
+
+	/** Limiteur des requêtes N1QL */
+	public static final AdaptiveLimiter QUERY = new AdaptiveLimiter(16, 2, 256, 1, SECONDS);
+
+	/** Limiteur désactivé : les requêtes sont lancées immédiatement */
+	public static final AdaptiveLimiter NONE = new AdaptiveLimiter(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+			Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+	private static final double BACKOFF = 0.9;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final Scheduler scheduler;
+	private volatile long latencyThresholdNanos;
+
+	private double limit;
+	private long lastDecrease;
+	private volatile int permits;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * @param initialLimit Le nombre initial de requêtes simultanées
+	 * @param minLimit La limite basse
+	 * @param maxLimit La limite haute
+	 * @param latencyThreshold La latence au-delà de laquelle le service est considéré comme saturé
+	 * @param unit L'unité de latencyThreshold
+	 */
+	public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, long latencyThreshold, TimeUnit unit) {
+		this(initialLimit, minLimit, maxLimit, latencyThreshold, unit, DISPATCH);
+	}
+
+	/**
+	 * @param initialLimit Le nombre initial de requêtes simultanées
+	 * @param minLimit La limite basse
+	 * @param maxLimit La limite haute
+	 * @param latencyThreshold La latence au-delà de laquelle le service est considéré comme saturé
+	 * @param unit L'unité de latencyThreshold
+	 * @param scheduler Le scheduler sur lequel sont lancées les requêtes sorties de la file d'attente. Ne pas utiliser
+	 * un scheduler sur lequel un appelant peut bloquer (computation, trampoline...)
+	 */
+	public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, long latencyThreshold, TimeUnit unit,
+			Scheduler scheduler) {
+		if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit) {
+			throw new IllegalArgumentException("Expected 1 <= minLimit <= initialLimit <= maxLimit");
+		}
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.latencyThresholdNanos = unit.toNanos(latencyThreshold);
+		this.scheduler = scheduler;
+		this.limit = initialLimit;
+		this.permits = initialLimit;
+		this.lastDecrease = System.nanoTime();
+	}
+
+	/**
+	 * Soumet une requête au limiteur. La requête n'est créée (appel de task) qu'une fois
+	 * une place obtenue, et la place est libérée à la fin (ou à l'annulation) de l'Observable.
+	 *
+	 * @param task Le producteur de la requête
+	 * @return Observable<T> L'Observable de la requête, limité
+	 */
+	public <T> Observable<T> submit(Func0<Observable<T>> task) {
+		if (this == NONE) {
+			return Observable.defer(task);
+		}
+		return Observable.create(subscriber -> {
+			// place libre et personne en attente : pas de changement de thread
+			if (queue.isEmpty() && tryAcquire()) {
+				run(task, subscriber);
+				return;
+			}
+			queued.incrementAndGet();
+			queue.offer(() -> run(task, subscriber));
+			drain();
+		});
+	}
+
+	private <T> void run(Func0<Observable<T>> task, Subscriber<? super T> subscriber) {
+		if (subscriber.isUnsubscribed()) {
+			inFlight.decrementAndGet();
+			drain();
+			return;
+		}
+
+		final long start = System.nanoTime();
+		final AtomicLong latency = new AtomicLong(-1);
+		final AtomicBoolean released = new AtomicBoolean();
+		final Action1<Throwable> release = error -> {
+			if (released.compareAndSet(false, true)) {
+				latency.compareAndSet(-1, System.nanoTime() - start);
+				onRelease(latency.get(), error);
+			}
+		};
+		subscriber.add(Subscriptions.create(() -> release.call(null)));
+
+		final Observable<T> request;
+		try {
+			request = task.call();
+		}
+		catch (Throwable t) {
+			release.call(t);
+			subscriber.onError(t);
+			return;
+		}
+
+		request
+			.doOnNext(v -> latency.compareAndSet(-1, System.nanoTime() - start))
+			.doOnError(release)
+			.doOnCompleted(() -> release.call(null))
+			.unsafeSubscribe(subscriber);
+	}
+
+	private void onRelease(long latencyNanos, Throwable error) {
+		final boolean overloaded = latencyNanos > latencyThresholdNanos || isOverload(error);
+		synchronized (this) {
+			final long now = System.nanoTime();
+			if (overloaded) {
+				// une seule diminution par intervalle de latence, pour ne pas sanctionner toute une rafale
+				if (now - lastDecrease > latencyThresholdNanos) {
+					limit = Math.max(minLimit, limit * BACKOFF);
+					lastDecrease = now;
+				}
+			}
+			else if (error == null) {
+				limit = Math.min(maxLimit, limit + 1 / limit);
+			}
+			permits = (int) limit;
+		}
+		inFlight.decrementAndGet();
+		drain();
+	}
+
+	private boolean tryAcquire() {
+		for (;;) {
+			final int current = inFlight.get();
+			if (current >= permits) {
+				return false;
+			}
+			if (inFlight.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	private void drain() {
+		while (!queue.isEmpty() && tryAcquire()) {
+			final Runnable next = queue.poll();
+			if (next == null) {
+				inFlight.decrementAndGet();
+				continue;
+			}
+			queued.decrementAndGet();
+			// une requête sortie de la file n'est jamais lancée directement : ni sur le thread (souvent un
+			// thread IO du SDK) ni dans la pile de la requête qui vient de se terminer
+			final Scheduler.Worker worker = scheduler.createWorker();
+			worker.schedule(() -> {
+				try {
+					next.run();
+				}
+				finally {
+					worker.unsubscribe();
+				}
+			});
+		}
+	}
+
+	private static boolean isOverload(Throwable error) {
+		for (Throwable t = error; t != null; t = t.getCause()) {
+			if (t instanceof TimeoutException
+					|| t instanceof TemporaryFailureException
+					|| t instanceof BackpressureException
+					|| t instanceof N1QLException && ((N1QLException) t).isOverload()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Modifie le seuil de latence au-delà duquel le service est considéré comme saturé
+	 * @param latencyThreshold Le seuil
+	 * @param unit L'unité de latencyThreshold
+	 * @return {@link AdaptiveLimiter} Le limiteur
+	 */
+	public AdaptiveLimiter latencyThreshold(long latencyThreshold, TimeUnit unit) {
+		this.latencyThresholdNanos = unit.toNanos(latencyThreshold);
+		return this;
+	}
+
+	// ------- Metrics
+
+	/**
+	 * @return Le nombre de requêtes simultanées actuellement autorisées
+	 */
+	public int limit() {
+		return permits;
+	}
+
+	/**
+	 * @return Le nombre de requêtes en cours d'exécution
+	 */
+	public int inFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * @return Le nombre de requêtes en attente d'une place
+	 */
+	public int queueDepth() {
+		return queued.get();
+	}
+
+}
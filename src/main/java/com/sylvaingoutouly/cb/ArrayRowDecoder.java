@@ -0,0 +1,164 @@
+package com.sylvaingoutouly.cb;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+
+import rx.functions.Func1;
+
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonParser;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonToken;
+import com.couchbase.client.deps.com.fasterxml.jackson.databind.BeanDescription;
+import com.couchbase.client.deps.com.fasterxml.jackson.databind.DeserializationConfig;
+import com.couchbase.client.deps.com.fasterxml.jackson.databind.DeserializationContext;
+import com.couchbase.client.deps.com.fasterxml.jackson.databind.JavaType;
+import com.couchbase.client.deps.com.fasterxml.jackson.databind.JsonDeserializer;
+import com.couchbase.client.deps.com.fasterxml.jackson.databind.deser.DefaultDeserializationContext;
+import com.couchbase.client.deps.com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+
+/**
+ * Décode les lignes produites par un <code>SELECT RAW [f1, f2, ...]</code> : chaque valeur du tableau est
+ * affectée, selon sa position, à la propriété de l'entité portant ce nom.
+ * Les propriétés sont résolues une seule fois, à la création du décodeur, par l'introspection Jackson
+ * utilisée par {@link N1QL.SyncQuery#executeAndMap(Class)} : les noms externes (<code>@JsonProperty</code>),
+ * les propriétés ignorées (<code>@JsonIgnore</code>) et les setters sont respectés. Les désérialiseurs
+ * spécifiques à une propriété (<code>@JsonDeserialize</code>) et les créateurs (<code>@JsonCreator</code>)
+ * ne le sont pas : l'entité doit disposer d'un constructeur sans argument.
+ * Les colonnes String, numériques et booléennes sont lues directement sur le parser lorsque le type de la
+ * valeur correspond ; les autres valeurs passent par le désérialiseur Jackson de la colonne, résolu une seule
+ * fois, avec un unique contexte de désérialisation par ligne.
+ *
+ * @author sylvain
+ */
+class ArrayRowDecoder<T> implements Func1<byte[], T> {
+
+	enum Kind { STRING, INT, LONG, DOUBLE, BOOLEAN, OTHER }
+
+	private final Constructor<T> constructor;
+	private final Method[] setters;
+	private final Field[] fields;
+	private final Kind[] kinds;
+	private final JsonDeserializer<Object>[] deserializers;
+	private final DeserializationConfig config;
+	private final DefaultDeserializationContext context;
+
+	@SuppressWarnings("unchecked")
+	ArrayRowDecoder(Class<T> entity, String... names) {
+		try {
+			this.constructor = entity.getDeclaredConstructor();
+			this.constructor.setAccessible(true);
+		}
+		catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException(entity.getName() + " must have a no-arg constructor");
+		}
+		this.config = N1QL.mapper.getDeserializationConfig();
+		this.context = (DefaultDeserializationContext) N1QL.mapper.getDeserializationContext();
+		final BeanDescription description = config.introspect(N1QL.mapper.constructType(entity));
+		final DeserializationContext resolver = context.createInstance(config, null, N1QL.mapper.getInjectableValues());
+
+		this.setters = new Method[names.length];
+		this.fields = new Field[names.length];
+		this.kinds = new Kind[names.length];
+		this.deserializers = new JsonDeserializer[names.length];
+		for (int i = 0; i < names.length; i++) {
+			final BeanPropertyDefinition property = property(description, names[i]);
+			final Type type;
+			if (property.hasSetter()) {
+				setters[i] = property.getSetter().getAnnotated();
+				setters[i].setAccessible(true);
+				type = setters[i].getGenericParameterTypes()[0];
+			}
+			else if (property.hasField()) {
+				fields[i] = property.getField().getAnnotated();
+				fields[i].setAccessible(true);
+				type = fields[i].getGenericType();
+			}
+			else {
+				throw new IllegalArgumentException("Property " + names[i] + " of " + entity.getName() + " is not writable");
+			}
+			final JavaType javaType = N1QL.mapper.getTypeFactory().constructType(type);
+			kinds[i] = kind(javaType.getRawClass());
+			try {
+				deserializers[i] = resolver.findRootValueDeserializer(javaType);
+			}
+			catch (IOException e) {
+				throw new IllegalArgumentException("No deserializer for property " + names[i] + " of " + entity.getName(), e);
+			}
+		}
+	}
+
+	private static Kind kind(Class<?> type) {
+		if (type == String.class) return Kind.STRING;
+		if (type == int.class || type == Integer.class) return Kind.INT;
+		if (type == long.class || type == Long.class) return Kind.LONG;
+		if (type == double.class || type == Double.class) return Kind.DOUBLE;
+		if (type == boolean.class || type == Boolean.class) return Kind.BOOLEAN;
+		return Kind.OTHER;
+	}
+
+	private static BeanPropertyDefinition property(BeanDescription description, String name) {
+		for (BeanPropertyDefinition property : description.findProperties()) {
+			if (property.getName().equals(name)) {
+				return property;
+			}
+		}
+		throw new IllegalArgumentException("No property " + name + " in " + description.getBeanClass().getName());
+	}
+
+	@Override
+	public T call(byte[] row) {
+		try (JsonParser p = N1QL.mapper.getFactory().createParser(row)) {
+			if (p.nextToken() != JsonToken.START_ARRAY) {
+				throw new IllegalStateException("Expected an array row, got " + p.getCurrentToken());
+			}
+			final DeserializationContext ctxt = context.createInstance(config, p, N1QL.mapper.getInjectableValues());
+			final T entity = constructor.newInstance();
+			for (int i = 0; i < kinds.length; i++) {
+				final JsonToken token = p.nextToken();
+				if (token == JsonToken.VALUE_NULL) {
+					continue;
+				}
+				final Object value = read(p, token, i, ctxt);
+				if (setters[i] != null) {
+					setters[i].invoke(entity, value);
+				}
+				else {
+					fields[i].set(entity, value);
+				}
+			}
+			return entity;
+		}
+		catch (IOException | ReflectiveOperationException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Lecture directe si le type de la valeur correspond à celui de la colonne ; sinon (conversion,
+	 * objet, tableau, type non scalaire) le désérialiseur Jackson décide
+	 */
+	private Object read(JsonParser p, JsonToken token, int i, DeserializationContext ctxt) throws IOException {
+		switch (kinds[i]) {
+			case STRING:
+				if (token == JsonToken.VALUE_STRING) return p.getText();
+				break;
+			case INT:
+				if (token == JsonToken.VALUE_NUMBER_INT) return p.getIntValue();
+				break;
+			case LONG:
+				if (token == JsonToken.VALUE_NUMBER_INT) return p.getLongValue();
+				break;
+			case DOUBLE:
+				if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) return p.getDoubleValue();
+				break;
+			case BOOLEAN:
+				if (token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE) return token == JsonToken.VALUE_TRUE;
+				break;
+			default:
+		}
+		return deserializers[i].deserialize(p, ctxt);
+	}
+
+}
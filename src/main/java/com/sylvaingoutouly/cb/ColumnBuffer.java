@@ -0,0 +1,256 @@
+package com.sylvaingoutouly.cb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonParser;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonToken;
+import com.couchbase.client.java.Bucket;
+
+/**
+ * Résultat d'une requête sur une entité stocké par colonnes typées (long[], double[], boolean[], String[])
+ * plutôt que sous forme d'objets : adapté aux exports et scans volumineux.
+ * La requête est de la forme <code>SELECT RAW [f1, f2, ...]</code> et chaque ligne est décodée par position,
+ * sans jamais créer d'objet intermédiaire ni de nom de champ par ligne.
+ *
+ * <br/>Exemple :
+ * <pre>
+ * final ColumnBuffer buffer = ColumnBuffer.with(bucket, Beer.class)
+ * 	.longs("ibu")
+ * 	.doubles("abv")
+ * 	.strings("name")
+ * 	.fetch();
+ * final double[] abv = buffer.doubles("abv");
+ * </pre>
+ *
+ * @author sylvain
+ */
+public class ColumnBuffer {
+
+	enum Type { LONG, DOUBLE, BOOLEAN, STRING }
+
+	private final List<String> names;
+	private final Type[] types;
+	private final Object[] columns;
+	private final BitSet[] nulls;
+	private int capacity = 64;
+	private int size;
+
+	private ColumnBuffer(List<String> names, Type[] types) {
+		this.names = names;
+		this.types = types;
+		this.columns = new Object[types.length];
+		this.nulls = new BitSet[types.length];
+		for (int i = 0; i < types.length; i++) {
+			columns[i] = allocate(types[i], capacity);
+			nulls[i] = new BitSet();
+		}
+	}
+
+	/**
+	 * Crée la description des colonnes à charger pour une entité
+	 * @param bucket Le {@link Bucket} préalablement configuré
+	 * @param entity La classe de mapping utilisée pour créer les documents (cf. Spring Data Couchbase)
+	 */
+	public static Columns with(Bucket bucket, Class<?> entity) {
+		return new Columns(bucket, entity);
+	}
+
+	/**
+	 * Description des colonnes (nom de l'attribut et type) d'un {@link ColumnBuffer}
+	 */
+	public static class Columns {
+
+		private final Bucket bucket;
+		private final Class<?> entity;
+		private final List<String> names = new ArrayList<>();
+		private final List<Type> types = new ArrayList<>();
+		private AdaptiveLimiter limiter = AdaptiveLimiter.QUERY;
+
+		private Columns(Bucket bucket, Class<?> entity) {
+			this.bucket = bucket;
+			this.entity = entity;
+		}
+
+		public Columns longs(String... fields) {
+			return add(Type.LONG, fields);
+		}
+
+		public Columns doubles(String... fields) {
+			return add(Type.DOUBLE, fields);
+		}
+
+		public Columns booleans(String... fields) {
+			return add(Type.BOOLEAN, fields);
+		}
+
+		public Columns strings(String... fields) {
+			return add(Type.STRING, fields);
+		}
+
+		/**
+		 * Positionne le limiteur de concurrence de la requête. Un export volumineux est lent par nature :
+		 * utiliser un limiteur dédié ou {@link AdaptiveLimiter#NONE} plutôt que {@link AdaptiveLimiter#QUERY} (défaut)
+		 * pour ne pas réduire la limite de tout le trafic N1QL.
+		 *
+		 * @param limiter Le limiteur
+		 * @return {@link Columns} La description des colonnes
+		 */
+		public Columns limiter(AdaptiveLimiter limiter) {
+			this.limiter = limiter;
+			return this;
+		}
+
+		private Columns add(Type type, String... fields) {
+			for (String f : fields) {
+				names.add(f);
+				types.add(type);
+			}
+			return this;
+		}
+
+		/**
+		 * Exécute la requête et charge les colonnes
+		 * @return {@link ColumnBuffer} Les colonnes chargées
+		 */
+		public ColumnBuffer fetch() {
+			final String[] fields = names.toArray(new String[names.size()]);
+			final ColumnBuffer buffer = new ColumnBuffer(new ArrayList<>(names), types.toArray(new Type[types.size()]));
+			N1QLTemplate.of(bucket, N1QL.compactEntityQuery(entity, fields))
+				.limiter(limiter)
+				.rows()
+				.toBlocking()
+				.forEach(buffer::append);
+			return buffer;
+		}
+
+	}
+
+	private void append(byte[] row) {
+		if (size == capacity) {
+			capacity *= 2;
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = grow(columns[i], capacity);
+			}
+		}
+		try (JsonParser p = N1QL.mapper.getFactory().createParser(row)) {
+			if (p.nextToken() != JsonToken.START_ARRAY) {
+				throw new IllegalStateException("Expected an array row, got " + p.getCurrentToken());
+			}
+			for (int i = 0; i < types.length; i++) {
+				final JsonToken token = p.nextToken();
+				if (token == JsonToken.VALUE_NULL) {
+					nulls[i].set(size);
+					continue;
+				}
+				if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+					p.skipChildren();
+					nulls[i].set(size);
+					continue;
+				}
+				// une valeur d'un autre type que la colonne n'est pas convertie (ex : "12" dans une colonne long)
+				if (!accepts(types[i], token)) {
+					nulls[i].set(size);
+					continue;
+				}
+				switch (types[i]) {
+					case LONG:
+						((long[]) columns[i])[size] = p.getValueAsLong();
+						break;
+					case DOUBLE:
+						((double[]) columns[i])[size] = p.getValueAsDouble();
+						break;
+					case BOOLEAN:
+						((boolean[]) columns[i])[size] = p.getValueAsBoolean();
+						break;
+					default:
+						((String[]) columns[i])[size] = p.getValueAsString();
+				}
+			}
+			size++;
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+
+	private static boolean accepts(Type type, JsonToken token) {
+		switch (type) {
+			case LONG: return token == JsonToken.VALUE_NUMBER_INT;
+			case DOUBLE: return token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT;
+			case BOOLEAN: return token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE;
+			default: return token == JsonToken.VALUE_STRING;
+		}
+	}
+
+	private static Object allocate(Type type, int capacity) {
+		switch (type) {
+			case LONG: return new long[capacity];
+			case DOUBLE: return new double[capacity];
+			case BOOLEAN: return new boolean[capacity];
+			default: return new String[capacity];
+		}
+	}
+
+	private static Object grow(Object column, int capacity) {
+		if (column instanceof long[]) return Arrays.copyOf((long[]) column, capacity);
+		if (column instanceof double[]) return Arrays.copyOf((double[]) column, capacity);
+		if (column instanceof boolean[]) return Arrays.copyOf((boolean[]) column, capacity);
+		return Arrays.copyOf((String[]) column, capacity);
+	}
+
+	// ------- Accessors
+
+	/**
+	 * @return Le nombre de lignes chargées
+	 */
+	public int size() {
+		return size;
+	}
+
+	public long[] longs(String field) {
+		return Arrays.copyOf((long[]) column(field, Type.LONG), size);
+	}
+
+	public double[] doubles(String field) {
+		return Arrays.copyOf((double[]) column(field, Type.DOUBLE), size);
+	}
+
+	public boolean[] booleans(String field) {
+		return Arrays.copyOf((boolean[]) column(field, Type.BOOLEAN), size);
+	}
+
+	public String[] strings(String field) {
+		return Arrays.copyOf((String[]) column(field, Type.STRING), size);
+	}
+
+	/**
+	 * @param field Le nom de la colonne
+	 * @param row L'index de la ligne
+	 * @return true si la valeur était absente, null, un objet / tableau ou d'un type différent de celui
+	 * de la colonne (la colonne contient alors 0 / false / null)
+	 */
+	public boolean isNull(String field, int row) {
+		return nulls[index(field)].get(row);
+	}
+
+	private Object column(String field, Type type) {
+		final int i = index(field);
+		if (types[i] != type) {
+			throw new IllegalArgumentException("Column " + field + " is of type " + types[i]);
+		}
+		return columns[i];
+	}
+
+	private int index(String field) {
+		final int i = names.indexOf(field);
+		if (i < 0) {
+			throw new IllegalArgumentException("Unknown column " + field);
+		}
+		return i;
+	}
+
+}
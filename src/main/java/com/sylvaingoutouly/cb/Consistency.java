@@ -0,0 +1,69 @@
+package com.sylvaingoutouly.cb;
+
+import static java.util.Arrays.stream;
+
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.query.N1qlParams;
+import com.couchbase.client.java.query.consistency.ScanConsistency;
+
+/**
+ * Niveaux de cohérence des scans d'index N1QL.
+ *
+ * <ul>
+ * <li>NOT_BOUNDED : pas d'attente, l'index est lu dans son état courant (le plus rapide)</li>
+ * <li>AT_PLUS : attente de l'indexation des seules écritures fournies (mutation tokens) ; "read your own writes"
+ * sans attendre le reste du bucket</li>
+ * <li>REQUEST_PLUS : attente de l'indexation de toutes les écritures du bucket antérieures à la requête</li>
+ * </ul>
+ * AT_PLUS nécessite l'activation des mutation tokens sur l'environnement
+ * (<code>DefaultCouchbaseEnvironment.builder().mutationTokensEnabled(true)</code>) : si des écritures sont
+ * fournies sans qu'aucune ne porte de token, une {@link IllegalStateException} est levée. Sans écriture,
+ * la requête est exécutée en REQUEST_PLUS afin de conserver la garantie de lecture.
+ *
+ * @author sylvain
+ */
+public enum Consistency {
+
+	NOT_BOUNDED, AT_PLUS, REQUEST_PLUS;
+
+	/**
+	 * @return true si un résultat obtenu avec ce niveau de cohérence peut être servi depuis le cache
+	 */
+	static boolean cacheable(Consistency consistency) {
+		return consistency == null || consistency == NOT_BOUNDED;
+	}
+
+	/**
+	 * Positionne la cohérence sur les paramètres de la requête
+	 * @param params Les paramètres de la requête
+	 * @param consistency Le niveau de cohérence, null pour conserver celui des paramètres
+	 * @param writes Les documents écrits dont on attend l'indexation (AT_PLUS)
+	 */
+	static void apply(N1qlParams params, Consistency consistency, Document<?>[] writes) {
+		if (consistency == null) {
+			return;
+		}
+		switch (consistency) {
+			case REQUEST_PLUS:
+				params.consistency(ScanConsistency.REQUEST_PLUS);
+				break;
+			case AT_PLUS:
+				if (writes == null || writes.length == 0) {
+					params.consistency(ScanConsistency.REQUEST_PLUS);
+					break;
+				}
+				final Document<?>[] tokens = stream(writes)
+					.filter(d -> d != null && d.mutationToken() != null)
+					.toArray(Document<?>[]::new);
+				if (tokens.length == 0) {
+					throw new IllegalStateException("AT_PLUS requested but no write carries a mutation token "
+						+ "(mutationTokensEnabled must be set on the environment)");
+				}
+				params.consistentWith(tokens);
+				break;
+			default:
+				params.consistency(ScanConsistency.NOT_BOUNDED);
+		}
+	}
+
+}
@@ -0,0 +1,224 @@
+package com.sylvaingoutouly.cb;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.json.JsonObject;
+
+/**
+ * Vue locale, rafraîchie de manière incrémentale, des documents d'une entité
+ * (cf. {@link N1QL.SyncQuery#queryEntity(Class, String...)}).
+ * Les documents sont conservés par id et la vue mémorise un "watermark" : la plus grande valeur
+ * observée d'un champ de date de modification ou du CAS. Chaque {@link #refresh()} ne relit que les
+ * documents modifiés depuis ce watermark ; le coût du rafraîchissement dépend donc du volume de
+ * modifications et non plus du volume de données.
+ *
+ * Les requêtes s'appuient sur un index (`_class`, watermark) créé par {@link #createIndex(String)}.
+ * Les suppressions ne sont pas détectées par le rafraîchissement incrémental : utiliser {@link #reload()}.
+ * Les documents sans watermark ne sont pas chargés.
+ *
+ * Le watermark est un "high-water mark" global alors que ses valeurs ne sont pas globalement ordonnées :
+ * le CAS ne l'est qu'au sein d'un vBucket et dépend de l'horloge du noeud, une date de modification
+ * dépend de l'horloge de l'écrivain. Une écriture sur un noeud (ou un client) en retard peut donc recevoir
+ * une valeur inférieure au watermark de la vue et ne jamais être chargée par {@link #refresh()}.
+ * {@link #overlap(long)} fixe une fenêtre de relecture couvrant ce décalage ; au-delà, seul
+ * {@link #reload()} rattrape ces documents.
+ *
+ * @author sylvain
+ */
+public class EntityView<T> {
+
+	private static final String ID = "__id";
+	private static final String WATERMARK = "__wm";
+
+	private final Bucket bucket;
+	private final Class<T> entity;
+	private final String watermark;
+	private final Map<String, T> documents = new ConcurrentHashMap<>();
+
+	private final Map<String, Long> versions = new HashMap<>();
+
+	private N1QLTemplate<JsonObject> delta;
+	private volatile long mark = Long.MIN_VALUE;
+	private long overlap;
+
+	private EntityView(Bucket bucket, Class<T> entity, String watermark, String... fields) {
+		this.bucket = bucket;
+		this.entity = entity;
+		this.watermark = watermark;
+		final String projection = fields == null || fields.length == 0 ? "%bucket%.*" : String.join(",", fields);
+		this.delta = N1QLTemplate
+			.of(bucket, "select META().id as `" + ID + "`, " + watermark + " as `" + WATERMARK + "`, " + projection
+				+ " from %bucket% where `_class` =\"" + entity.getName() + "\" and " + watermark + " >= $1")
+			.consistency(Consistency.REQUEST_PLUS);
+	}
+
+	/**
+	 * Crée une vue dont le watermark est un champ numérique de date de modification
+	 *
+	 * @param bucket Le {@link Bucket} préalablement configuré
+	 * @param entity La classe de mapping utilisée pour créer les documents (cf. Spring Data Couchbase)
+	 * @param watermarkField Le champ contenant la date de modification (ex : un timestamp en ms)
+	 * @param fields les attributs à charger, tous si aucun
+	 */
+	public static <T> EntityView<T> of(Bucket bucket, Class<T> entity, String watermarkField, String... fields) {
+		return new EntityView<>(bucket, entity, watermarkField, fields);
+	}
+
+	/**
+	 * Crée une vue dont le watermark est le CAS des documents
+	 *
+	 * @param bucket Le {@link Bucket} préalablement configuré
+	 * @param entity La classe de mapping utilisée pour créer les documents (cf. Spring Data Couchbase)
+	 * @param fields les attributs à charger, tous si aucun
+	 */
+	public static <T> EntityView<T> byCas(Bucket bucket, Class<T> entity, String... fields) {
+		return new EntityView<>(bucket, entity, "META().cas", fields);
+	}
+
+	/**
+	 * Positionne le niveau de cohérence des requêtes de rafraîchissement. REQUEST_PLUS par défaut : avec un
+	 * niveau plus faible, un document indexé en retard avec un watermark inférieur à celui de la vue
+	 * ne serait jamais chargé.
+	 *
+	 * @param consistency Le niveau de cohérence
+	 * @return {@link EntityView} La vue
+	 */
+	public synchronized EntityView<T> consistency(Consistency consistency) {
+		this.delta = delta.consistency(consistency);
+		return this;
+	}
+
+	/**
+	 * Positionne le limiteur de concurrence des requêtes de rafraîchissement. Un {@link #reload()} est un
+	 * scan complet, lent par nature : utiliser un limiteur dédié ou {@link AdaptiveLimiter#NONE} plutôt
+	 * que {@link AdaptiveLimiter#QUERY} (défaut) pour ne pas réduire la limite de tout le trafic N1QL.
+	 *
+	 * @param limiter Le limiteur
+	 * @return {@link EntityView} La vue
+	 */
+	public synchronized EntityView<T> limiter(AdaptiveLimiter limiter) {
+		this.delta = delta.limiter(limiter);
+		return this;
+	}
+
+	/**
+	 * Positionne la fenêtre de relecture : chaque {@link #refresh()} relit les documents depuis
+	 * <code>watermark - overlap</code> et n'applique que ceux qui sont nouveaux ou modifiés. La fenêtre doit
+	 * couvrir le décalage d'horloge maximal entre les noeuds (CAS, en nanosecondes) ou les écrivains
+	 * (date de modification, dans l'unité du champ). 0 par défaut.
+	 *
+	 * @param overlap La fenêtre, dans l'unité du watermark
+	 * @return {@link EntityView} La vue
+	 */
+	public synchronized EntityView<T> overlap(long overlap) {
+		if (overlap < 0) {
+			throw new IllegalArgumentException("overlap must be >= 0");
+		}
+		this.overlap = overlap;
+		return this;
+	}
+
+	/**
+	 * Crée l'index secondaire (`_class`, watermark) utilisé par le rafraîchissement
+	 * @param idxName Le nom de l'index
+	 */
+	public void createIndex(String idxName) {
+		N1QL.with(bucket).createSecondaryIndex(idxName, entity.getName(), "_class", watermark);
+	}
+
+	/**
+	 * Charge les documents modifiés depuis le dernier rafraîchissement (moins la fenêtre de relecture,
+	 * cf. {@link #overlap(long)}) et les applique à la vue
+	 * @return Le nombre de documents nouveaux ou modifiés appliqués ; les documents relus à l'identique
+	 * (même watermark) ne sont pas comptés
+	 * @throws RuntimeException si la requête échoue (index absent, timeout...) : la vue et le watermark
+	 * sont alors inchangés
+	 */
+	public synchronized int refresh() {
+		final Map<String, T> rows = new HashMap<>();
+		final Map<String, Long> marks = new HashMap<>();
+		final long from = mark < Long.MIN_VALUE + overlap ? Long.MIN_VALUE : mark - overlap;
+		final long max = load(from, rows, marks);
+		int applied = 0;
+		for (Map.Entry<String, Long> e : marks.entrySet()) {
+			if (!e.getValue().equals(versions.get(e.getKey()))) {
+				documents.put(e.getKey(), rows.get(e.getKey()));
+				versions.put(e.getKey(), e.getValue());
+				applied++;
+			}
+		}
+		mark = Math.max(mark, max);
+		return applied;
+	}
+
+	/**
+	 * Recharge l'ensemble des documents et retire de la vue ceux qui n'existent plus.
+	 * La vue reste lisible pendant le rechargement.
+	 * @return Le nombre de documents chargés
+	 * @throws RuntimeException si la requête échoue (index absent, timeout...) : la vue et le watermark
+	 * sont alors inchangés
+	 */
+	public synchronized int reload() {
+		final Map<String, T> all = new HashMap<>();
+		final Map<String, Long> marks = new HashMap<>();
+		final long max = load(Long.MIN_VALUE, all, marks);
+		mark = max;
+		documents.keySet().retainAll(all.keySet());
+		documents.putAll(all);
+		versions.clear();
+		versions.putAll(marks);
+		return all.size();
+	}
+
+	/**
+	 * Charge les documents, et leur watermark, dans target et marks sans toucher à l'état de la vue.
+	 * Une requête en échec côté service
+	 * lève une exception (cf. {@link N1QLTemplate#executeAsync(Object...)}) au lieu de renvoyer une liste
+	 * vide, ce qui viderait la vue lors d'un {@link #reload()}.
+	 */
+	private long load(long from, Map<String, T> target, Map<String, Long> marks) {
+		final List<JsonObject> rows = delta.execute(from);
+		long max = from;
+		for (JsonObject row : rows) {
+			final String id = row.getString(ID);
+			final long wm = ((Number) row.get(WATERMARK)).longValue();
+			row.removeKey(ID);
+			row.removeKey(WATERMARK);
+			row.removeKey("_class");
+			target.put(id, N1QL.jsonToObject(row, entity));
+			marks.put(id, wm);
+			max = Math.max(max, wm);
+		}
+		// les documents ayant exactement le watermark renvoyé sont relus au prochain rafraîchissement (>=) :
+		// plusieurs modifications peuvent partager la même valeur. Ils ne sont comptés que s'ils ont changé.
+		return max;
+	}
+
+	/**
+	 * @return La vue en lecture seule, indexée par id de document
+	 */
+	public Map<String, T> view() {
+		return Collections.unmodifiableMap(documents);
+	}
+
+	/**
+	 * @param id L'id du document
+	 * @return Le document, null s'il n'est pas dans la vue
+	 */
+	public T get(String id) {
+		return documents.get(id);
+	}
+
+	/**
+	 * @return Le plus grand watermark observé
+	 */
+	public long watermark() {
+		return mark;
+	}
+
+}
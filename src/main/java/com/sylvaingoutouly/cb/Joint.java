@@ -29,14 +29,14 @@ public class Joint {
 			
 			final Observable<JsonDocument> fromDoc = Observable
 					.from(fromKey)
-					.flatMap(id -> bucket.async().get(id));
+					.flatMap(id -> AdaptiveLimiter.KV.submit(() -> bucket.async().get(id)));
 			
 			final Observable<JsonDocument> foreigns = fromDoc
 				.switchIfEmpty(Observable.<JsonDocument>error(new IllegalStateException("Document not found !")))
 				.map(doc -> doc.content().toString())
 				.map(json -> JsonPath.parse(json).read("$." + jsonPathTo ))
 				.flatMap(o -> o instanceof String ? Observable.just((String) o) : Observable.from((List<String>) o))
-				.flatMap(id -> bucket.async().get(id));
+				.flatMap(id -> AdaptiveLimiter.KV.submit(() -> bucket.async().get(id)));
 			
 			return includeFrom ? foreigns.mergeWith(fromDoc) : foreigns;
 		}
@@ -5,10 +5,12 @@ import static com.couchbase.client.java.query.Index.dropNamedPrimaryIndex;
 import static com.couchbase.client.java.query.N1qlQuery.simple;
 import static com.couchbase.client.java.query.dsl.Expression.s;
 import static com.couchbase.client.java.query.dsl.Expression.x;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.stream;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import lombok.RequiredArgsConstructor;
@@ -16,10 +18,12 @@ import rx.Observable;
 
 import com.couchbase.client.deps.com.fasterxml.jackson.databind.ObjectMapper;
 import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.Document;
 import com.couchbase.client.java.document.json.JsonObject;
 import com.couchbase.client.java.query.AsyncN1qlQueryResult;
 import com.couchbase.client.java.query.AsyncN1qlQueryRow;
 import com.couchbase.client.java.query.Index;
+import com.couchbase.client.java.query.N1qlParams;
 import com.couchbase.client.java.query.N1qlQuery;
 import com.couchbase.client.java.query.N1qlQueryResult;
 import com.couchbase.client.java.query.dsl.Expression;
@@ -35,12 +39,14 @@ import com.couchbase.client.java.query.dsl.path.index.IndexType;
  * %bucket% est utilisé.
  * Permet d'effectuer des opération sur les index primaires et secondaires : création, suppression, 
  * index secondaire couvrant 
+ * Les requêtes passent par le limiteur de concurrence partagé {@link AdaptiveLimiter#QUERY} (configurable
+ * par requêteur).
  *  
  * @author sylvain
  */
 public class N1QL {
 	
-	private static final ObjectMapper mapper = new ObjectMapper();
+	static final ObjectMapper mapper = new ObjectMapper();
 
 	/**
 	 * Le builder à étape permettant de produire les requêteurs
@@ -51,6 +57,13 @@ public class N1QL {
 		
 		private final Bucket bucket;
 		private N1qlQuery query;
+		private String statement;
+		private Class<?> entity;
+		private N1QLCache cache;
+		private long ttlMillis;
+		private Consistency consistency;
+		private Document<?>[] writes;
+		private AdaptiveLimiter limiter = AdaptiveLimiter.QUERY;
 	
 		// ------- Sync operations
 		
@@ -72,34 +85,69 @@ public class N1QL {
 		
 		@Override
 		public SyncQuery query(String query) {
-			final String q = query.replaceAll("%bucket%", "`" + this.bucket.name() + "`");
-			this.query = N1qlQuery.simple(q);
+			this.statement = bindBucket(query, this.bucket);
+			this.query = null;
+			this.entity = null;
 			return this;
 		}
 		
 		@Override
 		public SyncQuery query(N1qlQuery query) {
 			this.query = query;
+			this.statement = null;
+			this.entity = null;
 			return this;
 		}
 
 		@Override
 		public SyncQuery queryEntity(Class<?> entity, String... fields) {
-			final String q = fields == null ? "*" : fieldsArrayToString(fields);
-			return query("select " + q + " from %bucket% where `_class` =\"" + entity.getName() + "\"");
+			query(entityQuery(entity, fields));
+			this.entity = entity;
+			return this;
 		}
 		
-		// ------- Async operations
+		@Override
+		public SyncQuery cached(N1QLCache cache, long ttl, TimeUnit unit) {
+			this.cache = cache;
+			this.ttlMillis = unit.toMillis(ttl);
+			return this;
+		}
 		
-		private static <T> T jsonToObject(JsonObject json, Class<T> entity) {
-			try{
-				return mapper.readValue(json.toString(), entity);
-			}
-			catch (IOException e) {
-				throw new RuntimeException(e.getMessage());
+		@Override
+		public SyncQuery consistency(Consistency consistency) {
+			this.consistency = consistency;
+			return this;
+		}
+		
+		@Override
+		public SyncQuery consistentWith(Document<?>... writes) {
+			this.consistency = Consistency.AT_PLUS;
+			this.writes = writes == null ? null : writes.clone();
+			return this;
+		}
+		
+		@Override
+		public SyncQuery limiter(AdaptiveLimiter limiter) {
+			this.limiter = limiter;
+			return this;
+		}
+		
+		/**
+		 * Les requêtes textuelles sont construites à chaque exécution ; une requête {@link N1qlQuery} 
+		 * fournie par l'appelant reçoit le niveau de cohérence dans ses propres paramètres.
+		 */
+		private N1qlQuery prepare() {
+			if (statement != null) {
+				final N1qlParams params = N1qlParams.build();
+				Consistency.apply(params, consistency, writes);
+				return N1qlQuery.simple(statement, params);
 			}
+			Consistency.apply(query.params(), consistency, writes);
+			return query;
 		}
 		
+		// ------- Async operations
+		
 		public AsyncQuery async() {
 			return new AsyncQuery() {
 				@Override
@@ -109,30 +157,57 @@ public class N1QL {
 				
 				@Override
 				public Observable<JsonObject> execute() {
-					return bucket.async()
-						.query(N1QLBuilder.this.query)
-						.flatMap(AsyncN1qlQueryResult::rows)
-						.map(AsyncN1qlQueryRow::value);
+					final N1qlQuery query = prepare();
+					if (cache != null && Consistency.cacheable(consistency)) {
+						return cache.rows(query, entity, ttlMillis, limiter, () -> bucket.async().query(query))
+							.map(N1QL::bytesToJson);
+					}
+					return limiter.submit(() -> bucket.async()
+						.query(query)
+						.flatMap(N1QL::rawRows))
+						.map(N1QL::bytesToJson);
 				}
 
 				@Override
 				public AsyncQuery query(String query) {
-					final String q = query.replaceAll("%bucket%", "`" + N1QLBuilder.this.bucket.name() + "`");
-					System.out.println(q);
-					N1QLBuilder.this.query = N1qlQuery.simple(q);
+					N1QLBuilder.this.query(query);
 					return this;
 				}
 
 				@Override
 				public AsyncQuery query(N1qlQuery query) {
-					N1QLBuilder.this.query = query;
+					N1QLBuilder.this.query(query);
 					return this;
 				}
 
 				@Override
 				public AsyncQuery queryEntity(Class<?> entity, String... fields) {
-					final String q = "SELECT " + fieldsArrayToString(fields) + " FROM %bucket% WHERE `_class`=\"" + entity.getName() + "\"";
-					return query(q);
+					N1QLBuilder.this.queryEntity(entity, fields);
+					return this;
+				}
+				
+				@Override
+				public AsyncQuery cached(N1QLCache cache, long ttl, TimeUnit unit) {
+					N1QLBuilder.this.cached(cache, ttl, unit);
+					return this;
+				}
+				
+				@Override
+				public AsyncQuery consistency(Consistency consistency) {
+					N1QLBuilder.this.consistency(consistency);
+					return this;
+				}
+				
+				@Override
+				public AsyncQuery consistentWith(Document<?>... writes) {
+					N1QLBuilder.this.consistentWith(writes);
+					return this;
+				}
+				
+				@Override
+				public AsyncQuery limiter(AdaptiveLimiter limiter) {
+					N1QLBuilder.this.limiter(limiter);
+					return this;
 				}
 
 			};
@@ -304,6 +379,47 @@ public class N1QL {
 		 */
 		SyncQuery query(String query);
 		
+		/**
+		 * Active la mise en cache des résultats de la requête. Les requêtes préparées par
+		 * {@link #queryEntity(Class, String...)} sont associées à leur entité pour l'invalidation
+		 * ({@link N1QLCache#invalidate(Class)}).
+		 * 
+		 * @param cache Le cache partagé
+		 * @param ttl La durée de vie des résultats
+		 * @param unit L'unité de ttl
+		 * @return {@link SyncQuery} Le requêteur
+		 */
+		SyncQuery cached(N1QLCache cache, long ttl, TimeUnit unit);
+		
+		/**
+		 * Positionne le niveau de cohérence du scan d'index (cf. {@link Consistency}). 
+		 * Attention : si la requête a été fournie sous forme de {@link N1qlQuery}, ses paramètres 
+		 * ({@link N1qlQuery#params()}) sont modifiés. Les requêtes en REQUEST_PLUS ou AT_PLUS ne passent pas
+		 * par le cache ({@link #cached(N1QLCache, long, TimeUnit)}).
+		 * 
+		 * @param consistency Le niveau de cohérence
+		 * @return {@link SyncQuery} Le requêteur
+		 */
+		SyncQuery consistency(Consistency consistency);
+		
+		/**
+		 * Passe la requête en cohérence AT_PLUS : elle n'attendra que l'indexation des documents fournis, 
+		 * et non celle de tout le bucket comme en REQUEST_PLUS
+		 * 
+		 * @param writes Les documents renvoyés par les opérations d'écriture (insert, upsert, replace...)
+		 * @return {@link SyncQuery} Le requêteur
+		 */
+		SyncQuery consistentWith(Document<?>... writes);
+		
+		/**
+		 * Positionne le limiteur de concurrence de la requête ({@link AdaptiveLimiter#QUERY} par défaut). 
+		 * Les requêtes lentes par nature doivent utiliser un limiteur dédié ou {@link AdaptiveLimiter#NONE}
+		 * 
+		 * @param limiter Le limiteur
+		 * @return {@link SyncQuery} Le requêteur
+		 */
+		SyncQuery limiter(AdaptiveLimiter limiter);
+		
 		/**
 		 * Bascule le requêteur en mode asynchrone
 		 * @return {@link AsyncQuery} Une instance requêteur asynchrone
@@ -313,6 +429,7 @@ public class N1QL {
 		/**
 		 * Exécute la requête et renvoie les résultats en mode synchrone
 		 * @return List<JsonObject> la liste des résulats au format {@link JsonObject}
+		 * @throws RuntimeException si la requête échoue côté service (syntaxe, index absent, timeout...)
 		 */
 		List<JsonObject> execute(); 
 		
@@ -358,7 +475,42 @@ public class N1QL {
 		AsyncQuery query(String query); 
 		
 		/**
-		 * Exécute la requête et renvoie les résultats en mode asynchrone
+		 * Active la mise en cache des résultats de la requête (cf. {@link SyncQuery#cached(N1QLCache, long, TimeUnit)})
+		 * 
+		 * @param cache Le cache partagé
+		 * @param ttl La durée de vie des résultats
+		 * @param unit L'unité de ttl
+		 * @return {@link AsyncQuery} Le requêteur asynchrone
+		 */
+		AsyncQuery cached(N1QLCache cache, long ttl, TimeUnit unit);
+		
+		/**
+		 * Positionne le niveau de cohérence du scan d'index (cf. {@link SyncQuery#consistency(Consistency)})
+		 * 
+		 * @param consistency Le niveau de cohérence
+		 * @return {@link AsyncQuery} Le requêteur asynchrone
+		 */
+		AsyncQuery consistency(Consistency consistency);
+		
+		/**
+		 * Passe la requête en cohérence AT_PLUS (cf. {@link SyncQuery#consistentWith(Document...)})
+		 * 
+		 * @param writes Les documents renvoyés par les opérations d'écriture
+		 * @return {@link AsyncQuery} Le requêteur asynchrone
+		 */
+		AsyncQuery consistentWith(Document<?>... writes);
+		
+		/**
+		 * Positionne le limiteur de concurrence de la requête (cf. {@link SyncQuery#limiter(AdaptiveLimiter)})
+		 * 
+		 * @param limiter Le limiteur
+		 * @return {@link AsyncQuery} Le requêteur asynchrone
+		 */
+		AsyncQuery limiter(AdaptiveLimiter limiter);
+		
+		/**
+		 * Exécute la requête et renvoie les résultats en mode asynchrone. Une requête en échec côté service
+		 * (syntaxe, index absent, timeout...) termine l'Observable en erreur, avec ou sans cache
 		 * @return Observable<JsonObject> Un Observable de la liste des résulats au format {@link JsonObject}
 		 */
 		Observable<JsonObject> execute(); 
@@ -379,4 +531,67 @@ public class N1QL {
 		return stream(fields).collect(Collectors.joining(","));
 	}
 	
+	/**
+	 * Remplace le placeholder %bucket% par le nom du bucket correctement "échappé"
+	 */
+	static String bindBucket(String query, Bucket bucket) {
+		return query.replace("%bucket%", "`" + bucket.name() + "`");
+	}
+	
+	/**
+	 * Produit la requête select filtrée sur l'entité java (champ `_class` de Spring Data Couchbase)
+	 */
+	static String entityQuery(Class<?> entity, String... fields) {
+		final String q = fields == null || fields.length == 0 ? "*" : fieldsArrayToString(fields);
+		return "select " + q + " from %bucket% where `_class` =\"" + entity.getName() + "\"";
+	}
+	
+	/**
+	 * Produit la requête select filtrée sur l'entité java dont les lignes sont des tableaux de valeurs
+	 * (les noms des champs ne sont pas répétés dans chaque ligne)
+	 */
+	static String compactEntityQuery(Class<?> entity, String... fields) {
+		if (fields == null || fields.length == 0) {
+			throw new IllegalArgumentException("At least one field is required");
+		}
+		return "select raw [" + fieldsArrayToString(fields) + "] from %bucket% where `_class` =\"" + entity.getName() + "\"";
+	}
+	
+	static <T> T jsonToObject(JsonObject json, Class<T> entity) {
+		try{
+			return mapper.readValue(json.toString(), entity);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Lignes brutes d'un résultat. Les erreurs renvoyées par le service (syntaxe, index absent, timeout...)
+	 * n'interrompent pas le flux des lignes : elles sont transformées en {@link N1QLException} à la fin du flux.
+	 */
+	static Observable<byte[]> rawRows(AsyncN1qlQueryResult result) {
+		return result.rows()
+			.map(AsyncN1qlQueryRow::byteValue)
+			.concatWith(result.finalSuccess()
+				.flatMap(success -> success
+					? Observable.<byte[]>empty()
+					: result.errors()
+						.toList()
+						.flatMap(errors -> Observable.<byte[]>error(new N1QLException(errors)))));
+	}
+	
+	static JsonObject bytesToJson(byte[] json) {
+		return JsonObject.fromJson(new String(json, UTF_8));
+	}
+	
+	static <T> T bytesToObject(byte[] json, Class<T> entity) {
+		try{
+			return mapper.readValue(json, entity);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+	
 }
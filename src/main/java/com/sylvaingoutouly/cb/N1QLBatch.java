@@ -0,0 +1,261 @@
+package com.sylvaingoutouly.cb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.json.JsonObject;
+
+/**
+ * Exécution "scatter-gather" d'un lot de requêtes N1QL indépendantes.
+ * Les requêtes sont lancées en parallèle (dans la limite de maxConcurrency), chacune avec son propre
+ * timeout ; la durée totale est celle de la requête la plus lente et non plus la somme des requêtes.
+ * L'échec d'une requête n'interrompt pas les autres : il est reporté dans le {@link Result}.
+ *
+ * <br/>Exemple :
+ * <pre>
+ * final N1QLBatch batch = N1QLBatch.with(bucket).timeout(2, TimeUnit.SECONDS);
+ * final Key&lt;Entity&gt; entities = batch.add("select field1, field2 from %bucket% where ...", Entity.class);
+ * final Key&lt;JsonObject&gt; others = batch.add(OTHERS_TEMPLATE, "param");
+ * final Result result = batch.execute();
+ * final List&lt;Entity&gt; list = result.get(entities);
+ * </pre>
+ *
+ * @author sylvain
+ */
+public class N1QLBatch {
+
+	private final Bucket bucket;
+	private final List<Request<?>> requests = new ArrayList<>();
+	private int maxConcurrency = 8;
+	private long timeoutMillis;
+	private AdaptiveLimiter limiter;
+
+	private N1QLBatch(Bucket bucket) {
+		this.bucket = bucket;
+	}
+
+	/**
+	 * Crée un lot vide à partir du bucket à manipuler
+	 * @param bucket Le {@link Bucket} préalablement configuré
+	 */
+	public static N1QLBatch with(Bucket bucket) {
+		return new N1QLBatch(bucket);
+	}
+
+	/**
+	 * @param maxConcurrency Le nombre maximum de requêtes du lot exécutées simultanément (8 par défaut)
+	 * @return {@link N1QLBatch} Le lot
+	 */
+	public N1QLBatch maxConcurrency(int maxConcurrency) {
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException("maxConcurrency must be > 0");
+		}
+		this.maxConcurrency = maxConcurrency;
+		return this;
+	}
+
+	/**
+	 * @param timeout Le timeout appliqué à chaque requête du lot (aucun par défaut)
+	 * @param unit L'unité de timeout
+	 * @return {@link N1QLBatch} Le lot
+	 */
+	public N1QLBatch timeout(long timeout, TimeUnit unit) {
+		this.timeoutMillis = unit.toMillis(timeout);
+		return this;
+	}
+
+	/**
+	 * @param limiter Le limiteur de concurrence appliqué à toutes les requêtes du lot (par défaut, celui
+	 * de chaque template)
+	 * @return {@link N1QLBatch} Le lot
+	 */
+	public N1QLBatch limiter(AdaptiveLimiter limiter) {
+		this.limiter = limiter;
+		return this;
+	}
+
+	/**
+	 * Ajoute un template au lot
+	 * @param template Le template à exécuter
+	 * @param params Les valeurs des paramètres positionnels
+	 * @return {@link Key} La clé permettant de récupérer le résultat
+	 */
+	public <T> Key<T> add(N1QLTemplate<T> template, Object... params) {
+		final Key<T> key = new Key<>(this, requests.size(), template.statement());
+		requests.add(new Request<>(key, template, params));
+		return key;
+	}
+
+	/**
+	 * Ajoute une requête textuelle au lot (le placeholder %bucket% est remplacé)
+	 * @param query La requête
+	 * @return {@link Key} La clé permettant de récupérer le résultat
+	 */
+	public Key<JsonObject> add(String query) {
+		return add(N1QLTemplate.of(bucket, query));
+	}
+
+	/**
+	 * Ajoute une requête textuelle au lot dont les résultats seront transformés en entité Java
+	 * @param query La requête
+	 * @param entity La classe de mapping
+	 * @return {@link Key} La clé permettant de récupérer le résultat
+	 */
+	public <T> Key<T> add(String query, Class<T> entity) {
+		return add(N1QLTemplate.of(bucket, query).mapTo(entity));
+	}
+
+	/**
+	 * Exécute le lot et attend la fin de toutes les requêtes
+	 * @return {@link Result} Les résultats et les échecs de chaque requête
+	 */
+	public Result execute() {
+		return executeAsync()
+			.toBlocking()
+			.single();
+	}
+
+	/**
+	 * Exécute le lot en mode asynchrone
+	 * @return Observable<Result> Un Observable émettant le résultat une fois toutes les requêtes terminées
+	 */
+	public Observable<Result> executeAsync() {
+		final List<Request<?>> snapshot = new ArrayList<>(requests);
+		return Observable.from(snapshot)
+			.flatMap(r -> r.run(timeoutMillis, limiter), maxConcurrency)
+			.toList()
+			.map(outcomes -> new Result(this, snapshot.size(), outcomes));
+	}
+
+	/**
+	 * Clé typée identifiant une requête du lot
+	 */
+	public static final class Key<T> {
+
+		private final N1QLBatch batch;
+		private final int index;
+		private final String statement;
+
+		private Key(N1QLBatch batch, int index, String statement) {
+			this.batch = batch;
+			this.index = index;
+			this.statement = statement;
+		}
+
+		@Override
+		public String toString() {
+			return "#" + index + " " + statement;
+		}
+
+	}
+
+	/**
+	 * Résultats d'un lot de requêtes
+	 */
+	public static final class Result {
+
+		private final N1QLBatch batch;
+		private final List<?>[] rows;
+		private final Map<Key<?>, Throwable> failures = new LinkedHashMap<>();
+
+		private Result(N1QLBatch batch, int size, List<Outcome> outcomes) {
+			this.batch = batch;
+			this.rows = new List<?>[size];
+			for (Outcome o : outcomes) {
+				if (o.error == null) {
+					rows[o.key.index] = o.rows;
+				}
+				else {
+					failures.put(o.key, o.error);
+				}
+			}
+		}
+
+		/**
+		 * @param key La clé renvoyée lors de l'ajout de la requête
+		 * @return List<T> Les résultats de la requête, null si elle a échoué
+		 * @throws IllegalArgumentException si la clé n'appartient pas à ce lot ou a été ajoutée après son exécution
+		 */
+		@SuppressWarnings("unchecked")
+		public <T> List<T> get(Key<T> key) {
+			return (List<T>) rows[check(key)];
+		}
+
+		/**
+		 * @param key La clé renvoyée lors de l'ajout de la requête
+		 * @return L'erreur de la requête, null si elle a réussi
+		 */
+		public Throwable error(Key<?> key) {
+			check(key);
+			return failures.get(key);
+		}
+
+		/**
+		 * @return Les requêtes en échec et leur erreur
+		 */
+		public Map<Key<?>, Throwable> failures() {
+			return Collections.unmodifiableMap(failures);
+		}
+
+		public boolean isSuccess() {
+			return failures.isEmpty();
+		}
+
+		private int check(Key<?> key) {
+			if (key.batch != batch || key.index >= rows.length) {
+				throw new IllegalArgumentException("Key " + key + " does not belong to this batch result");
+			}
+			return key.index;
+		}
+
+	}
+
+	private static final class Request<T> {
+
+		private final Key<T> key;
+		private final N1QLTemplate<T> template;
+		private final Object[] params;
+
+		Request(Key<T> key, N1QLTemplate<T> template, Object[] params) {
+			this.key = key;
+			this.template = template;
+			this.params = params;
+		}
+
+		Observable<Outcome> run(long timeoutMillis, AdaptiveLimiter limiter) {
+			final N1QLTemplate<T> t = limiter == null ? template : template.limiter(limiter);
+			// la construction de la requête peut échouer (paramètre non supporté, écritures sans mutation token) :
+			// différée pour que l'erreur ne concerne que cette requête et non tout le lot
+			Observable<List<T>> rows = Observable.defer(() -> t.executeAsync(params)).toList();
+			if (timeoutMillis > 0) {
+				rows = rows.timeout(timeoutMillis, TimeUnit.MILLISECONDS);
+			}
+			return rows
+				.map(r -> new Outcome(key, r, null))
+				.onErrorReturn(e -> new Outcome(key, null, e));
+		}
+
+	}
+
+	private static final class Outcome {
+
+		private final Key<?> key;
+		private final List<?> rows;
+		private final Throwable error;
+
+		Outcome(Key<?> key, List<?> rows, Throwable error) {
+			this.key = key;
+			this.rows = rows;
+			this.error = error;
+		}
+
+	}
+
+}
@@ -0,0 +1,217 @@
+package com.sylvaingoutouly.cb;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rx.Observable;
+import rx.functions.Func0;
+
+import com.couchbase.client.java.query.AsyncN1qlQueryResult;
+import com.couchbase.client.java.query.N1qlQuery;
+
+/**
+ * Cache client des résultats de requêtes N1QL, à activer explicitement sur un requêteur
+ * ({@link N1QL.SyncQuery#cached(N1QLCache, long, java.util.concurrent.TimeUnit)}) ou sur un
+ * template ({@link N1QLTemplate#cached(N1QLCache, long, java.util.concurrent.TimeUnit)}).
+ *
+ * <ul>
+ * <li>la clé est la requête complète telle qu'envoyée au service (requête + paramètres + options)</li>
+ * <li>la durée de vie est fixée par requêteur / template</li>
+ * <li>l'éviction (LRU) se fait sur un budget en octets : la taille des lignes brutes renvoyées par le service</li>
+ * <li>les requêtes identiques concurrentes ne produisent qu'un seul appel au service</li>
+ * <li>les entrées peuvent être invalidées par classe d'entité</li>
+ * </ul>
+ * Seuls les résultats en succès sont conservés : une requête en échec côté service termine l'Observable en erreur.
+ *
+ * @author sylvain
+ */
+public class N1QLCache {
+
+	private final long maxBytes;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<String, Observable<List<byte[]>>> inflight = new ConcurrentHashMap<>();
+
+	private long bytes;
+	private long generation;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxBytes Le budget mémoire du cache, en octets
+	 */
+	public N1QLCache(long maxBytes) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes must be > 0");
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Renvoie les lignes brutes de la requête depuis le cache ou, à défaut, depuis le loader.
+	 *
+	 * @param query La requête, qui sert de clé
+	 * @param entity La classe d'entité associée (pour l'invalidation), peut être null
+	 * @param ttlMillis La durée de vie de l'entrée
+	 * @param limiter Le limiteur de concurrence appliqué au chargement
+	 * @param loader Le producteur du résultat en cas d'absence dans le cache
+	 */
+	Observable<byte[]> rows(N1qlQuery query, Class<?> entity, long ttlMillis, AdaptiveLimiter limiter,
+			Func0<Observable<AsyncN1qlQueryResult>> loader) {
+		return Observable.defer(() -> {
+			final String key = query.n1ql().toString();
+			final List<byte[]> cached = get(key);
+			if (cached != null) {
+				hits.incrementAndGet();
+				return Observable.from(cached);
+			}
+			misses.incrementAndGet();
+			return inflight.computeIfAbsent(key, k -> load(k, entity, ttlMillis, limiter, loader))
+				.flatMap(Observable::from);
+		});
+	}
+
+	private Observable<List<byte[]>> load(String key, Class<?> entity, long ttlMillis, AdaptiveLimiter limiter,
+			Func0<Observable<AsyncN1qlQueryResult>> loader) {
+		final long gen = generation();
+		return limiter
+			.submit(() -> loader.call()
+				.flatMap(r -> N1QL.rawRows(r)
+					.toList()
+					.doOnNext(rows -> put(key, gen, new Entry(Collections.unmodifiableList(rows), entity, ttlMillis)))))
+			.doAfterTerminate(() -> inflight.remove(key))
+			.cache();
+	}
+
+	private synchronized List<byte[]> get(String key) {
+		final Entry e = entries.get(key);
+		if (e == null) {
+			return null;
+		}
+		if (e.expiresAt < System.currentTimeMillis()) {
+			remove(key);
+			return null;
+		}
+		return e.rows;
+	}
+
+	private synchronized void put(String key, long gen, Entry e) {
+		// une invalidation a eu lieu pendant le chargement : le résultat est peut-être obsolète
+		if (gen != generation || e.bytes > maxBytes) {
+			return;
+		}
+		final Entry previous = entries.put(key, e);
+		if (previous != null) {
+			bytes -= previous.bytes;
+		}
+		bytes += e.bytes;
+
+		final Iterator<Entry> it = entries.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			bytes -= it.next().bytes;
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	private void remove(String key) {
+		final Entry e = entries.remove(key);
+		if (e != null) {
+			bytes -= e.bytes;
+		}
+	}
+
+	private synchronized long generation() {
+		return generation;
+	}
+
+	/**
+	 * Invalide toutes les entrées associées à une classe d'entité
+	 * @param entity La classe d'entité dont les documents ont été modifiés
+	 */
+	public synchronized void invalidate(Class<?> entity) {
+		generation++;
+		final Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			final Entry e = it.next();
+			if (entity.equals(e.entity)) {
+				bytes -= e.bytes;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Vide le cache
+	 */
+	public synchronized void invalidateAll() {
+		generation++;
+		entries.clear();
+		bytes = 0;
+	}
+
+	// ------- Statistics
+
+	public long hits() {
+		return hits.get();
+	}
+
+	public long misses() {
+		return misses.get();
+	}
+
+	public long evictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return Le ratio hits / (hits + misses), 0 si aucun accès
+	 */
+	public double hitRatio() {
+		final long h = hits.get();
+		final long total = h + misses.get();
+		return total == 0 ? 0d : (double) h / total;
+	}
+
+	/**
+	 * @return La mémoire occupée par les résultats en cache, en octets
+	 */
+	public synchronized long bytes() {
+		return bytes;
+	}
+
+	public long maxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private static class Entry {
+
+		private final List<byte[]> rows;
+		private final Class<?> entity;
+		private final long expiresAt;
+		private final long bytes;
+
+		Entry(List<byte[]> rows, Class<?> entity, long ttlMillis) {
+			this.rows = rows;
+			this.entity = entity;
+			this.expiresAt = System.currentTimeMillis() + ttlMillis;
+			long size = 0;
+			for (byte[] row : rows) {
+				size += row.length;
+			}
+			this.bytes = size;
+		}
+
+	}
+
+}
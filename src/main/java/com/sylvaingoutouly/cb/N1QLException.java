@@ -0,0 +1,70 @@
+package com.sylvaingoutouly.cb;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.couchbase.client.java.document.json.JsonObject;
+
+/**
+ * Erreur renvoyée par le service N1QL (champ <code>errors</code> de la réponse) : syntaxe, index absent,
+ * timeout, ... Les codes d'erreur permettent de distinguer les échecs dus à la saturation du service
+ * (cf. {@link #isOverload()}), pris en compte par {@link AdaptiveLimiter}, des erreurs de la requête elle-même.
+ *
+ * @author sylvain
+ */
+public class N1QLException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Timeout du service de requête */
+	public static final int SERVICE_TIMEOUT = 1080;
+
+	/** Echec de lecture des documents auprès du service de données (ex : erreur temporaire) */
+	public static final int DATASTORE_FETCH = 12008;
+
+	/** Timeout du scan d'index */
+	public static final int INDEX_SCAN_TIMEOUT = 12015;
+
+	private static final Set<Integer> OVERLOAD = new HashSet<>(Arrays.asList(SERVICE_TIMEOUT, DATASTORE_FETCH, INDEX_SCAN_TIMEOUT));
+
+	private final List<JsonObject> errors;
+
+	/**
+	 * @param errors Les erreurs renvoyées par le service
+	 */
+	public N1QLException(List<JsonObject> errors) {
+		super(errors.toString());
+		this.errors = Collections.unmodifiableList(errors);
+	}
+
+	/**
+	 * @return Les erreurs renvoyées par le service ({"code": ..., "msg": ...})
+	 */
+	public List<JsonObject> errors() {
+		return errors;
+	}
+
+	/**
+	 * @param code Un code d'erreur N1QL
+	 * @return true si le service a renvoyé ce code
+	 */
+	public boolean hasCode(int code) {
+		return errors.stream().anyMatch(e -> code(e) == code);
+	}
+
+	/**
+	 * @return true si le service a renvoyé un timeout ou une erreur temporaire
+	 */
+	public boolean isOverload() {
+		return errors.stream().anyMatch(e -> OVERLOAD.contains(code(e)));
+	}
+
+	private static int code(JsonObject error) {
+		final Object code = error.get("code");
+		return code instanceof Number ? ((Number) code).intValue() : -1;
+	}
+
+}
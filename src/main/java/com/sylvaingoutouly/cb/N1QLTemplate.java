@@ -0,0 +1,241 @@
+package com.sylvaingoutouly.cb;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.functions.Func1;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.query.N1qlParams;
+import com.couchbase.client.java.query.N1qlQuery;
+
+/**
+ * Requête N1QL "compilée" et immuable.
+ * Le placeholder %bucket% est remplacé une seule fois à la création du template, les paramètres
+ * positionnels ($1, $2, ...) sont fournis à chaque exécution.
+ * Un template ne porte aucun état mutable : il peut être conservé dans un champ static et exécuté
+ * de manière concurrente depuis n'importe quel thread.
+ * Les méthodes {@link #mapTo(Class)}, {@link #adhoc(boolean)}, {@link #cached(N1QLCache, long, TimeUnit)},
+ * {@link #consistency(Consistency)}, {@link #consistentWith(Document...)} et {@link #limiter(AdaptiveLimiter)}
+ * renvoient une nouvelle instance.
+ *
+ * <br/>Exemple :
+ * <code>static final N1QLTemplate&lt;Entity&gt; BY_FIELD1 = N1QLTemplate.of(bucket, "select * from %bucket% where field1 = $1").mapTo(Entity.class);</code>
+ *
+ * @author sylvain
+ */
+public final class N1QLTemplate<T> {
+
+	private final Bucket bucket;
+	private final String statement;
+	private final Class<T> target;
+	private final Class<?> entity;
+	private final boolean adhoc;
+	private final N1QLCache cache;
+	private final long ttlMillis;
+	private final Consistency consistency;
+	private final Document<?>[] writes;
+	private final Func1<byte[], T> decoder;
+	private final AdaptiveLimiter limiter;
+
+	private N1QLTemplate(Bucket bucket, String statement, Class<T> target, Class<?> entity, boolean adhoc,
+			N1QLCache cache, long ttlMillis, Consistency consistency, Document<?>[] writes, Func1<byte[], T> decoder,
+			AdaptiveLimiter limiter) {
+		this.bucket = bucket;
+		this.statement = statement;
+		this.target = target;
+		this.entity = entity;
+		this.adhoc = adhoc;
+		this.cache = cache;
+		this.ttlMillis = ttlMillis;
+		this.consistency = consistency;
+		this.writes = writes;
+		this.decoder = decoder;
+		this.limiter = limiter;
+	}
+
+	/**
+	 * Crée un template à partir d'une requête textuelle. Si le placehoder %bucket% est trouvé
+	 * dans la chaîne, il est remplacé par le nom du bucket correctement "échappé"
+	 *
+	 * @param bucket Le {@link Bucket} préalablement configuré
+	 * @param query La requête, pouvant contenir des paramètres positionnels ($1, $2, ...)
+	 * @return {@link N1QLTemplate} Un template renvoyant des {@link JsonObject}
+	 */
+	public static N1QLTemplate<JsonObject> of(Bucket bucket, String query) {
+		return new N1QLTemplate<>(bucket, N1QL.bindBucket(query, bucket), JsonObject.class, null, true, null, 0,
+				null, null, null, AdaptiveLimiter.QUERY);
+	}
+
+	/**
+	 * Crée un template de requête select dont le filtre est l'entité java passée en argument
+	 * (cf. {@link N1QL.SyncQuery#queryEntity(Class, String...)}).
+	 *
+	 * @param bucket Le {@link Bucket} préalablement configuré
+	 * @param entity La classe de mapping utilisée pour créer les documents (cf. Spring Data Couchbase)
+	 * @param fields les attributs à renvoyer par la requête
+	 * @return {@link N1QLTemplate} Un template renvoyant des {@link JsonObject}
+	 */
+	public static N1QLTemplate<JsonObject> entity(Bucket bucket, Class<?> entity, String... fields) {
+		return new N1QLTemplate<>(bucket, N1QL.bindBucket(N1QL.entityQuery(entity, fields), bucket), JsonObject.class,
+				entity, true, null, 0, null, null, null, AdaptiveLimiter.QUERY);
+	}
+
+	/**
+	 * Crée un template de requête select sur l'entité java dont les lignes sont renvoyées sous forme de
+	 * tableaux (<code>SELECT RAW [f1, f2, ...]</code>) puis décodées par position dans l'entité : les noms
+	 * des champs ne sont ni transmis ni analysés pour chaque ligne, ce qui réduit la taille des réponses
+	 * et le coût du décodage sur les projections larges.
+	 * Les attributs projetés sont associés aux propriétés de l'entité comme pour {@link N1QL.SyncQuery#executeAndMap(Class)}
+	 * (noms Jackson, setters), à l'exception des désérialiseurs spécifiques ; l'entité doit disposer
+	 * d'un constructeur sans argument (cf. {@link ArrayRowDecoder}). Le template ne peut pas être transformé
+	 * par {@link #mapTo(Class)}.
+	 *
+	 * @param bucket Le {@link Bucket} préalablement configuré
+	 * @param entity La classe de mapping utilisée pour créer les documents (cf. Spring Data Couchbase)
+	 * @param fields les attributs à renvoyer par la requête
+	 * @return {@link N1QLTemplate} Un template renvoyant des instances de entity
+	 */
+	public static <T> N1QLTemplate<T> compact(Bucket bucket, Class<T> entity, String... fields) {
+		return new N1QLTemplate<>(bucket, N1QL.bindBucket(N1QL.compactEntityQuery(entity, fields), bucket), entity,
+				entity, true, null, 0, null, null, new ArrayRowDecoder<>(entity, fields),
+				AdaptiveLimiter.QUERY);
+	}
+
+	/**
+	 * @param target La classe vers laquelle chaque ligne de résultat sera transformée
+	 * @return {@link N1QLTemplate} Un nouveau template renvoyant des instances de target
+	 */
+	public <R> N1QLTemplate<R> mapTo(Class<R> target) {
+		if (decoder != null) {
+			throw new IllegalStateException("A compact template can not be mapped to another class");
+		}
+		return new N1QLTemplate<>(bucket, statement, target, entity, adhoc, cache, ttlMillis, consistency, writes, null, limiter);
+	}
+
+	/**
+	 * @param adhoc false pour que le SDK prépare la requête (prepared statement) et la réutilise
+	 * lors des exécutions suivantes
+	 * @return {@link N1QLTemplate} Un nouveau template
+	 */
+	public N1QLTemplate<T> adhoc(boolean adhoc) {
+		return new N1QLTemplate<>(bucket, statement, target, entity, adhoc, cache, ttlMillis, consistency, writes, decoder, limiter);
+	}
+
+	/**
+	 * Active la mise en cache des résultats. Les entrées sont associées à la classe d'entité du
+	 * template (ou à défaut à la classe de mapping) pour l'invalidation.
+	 *
+	 * @param cache Le cache partagé
+	 * @param ttl La durée de vie des résultats
+	 * @param unit L'unité de ttl
+	 * @return {@link N1QLTemplate} Un nouveau template
+	 */
+	public N1QLTemplate<T> cached(N1QLCache cache, long ttl, TimeUnit unit) {
+		return new N1QLTemplate<>(bucket, statement, target, entity, adhoc, cache, unit.toMillis(ttl), consistency, writes,
+				decoder, limiter);
+	}
+
+	/**
+	 * Les templates en REQUEST_PLUS ou AT_PLUS ne passent pas par le cache : un résultat en cache pourrait
+	 * être antérieur aux écritures de l'appelant.
+	 *
+	 * @param consistency Le niveau de cohérence par défaut des exécutions du template
+	 * @return {@link N1QLTemplate} Un nouveau template
+	 */
+	public N1QLTemplate<T> consistency(Consistency consistency) {
+		return new N1QLTemplate<>(bucket, statement, target, entity, adhoc, cache, ttlMillis, consistency, writes, decoder, limiter);
+	}
+
+	/**
+	 * Passe le template en cohérence AT_PLUS sur les écritures fournies : les exécutions attendront
+	 * uniquement l'indexation de ces documents.
+	 *
+	 * @param writes Les documents renvoyés par les opérations d'écriture (insert, upsert, replace...)
+	 * @return {@link N1QLTemplate} Un nouveau template
+	 */
+	public N1QLTemplate<T> consistentWith(Document<?>... writes) {
+		return new N1QLTemplate<>(bucket, statement, target, entity, adhoc, cache, ttlMillis, Consistency.AT_PLUS,
+				writes == null ? null : writes.clone(), decoder, limiter);
+	}
+
+	/**
+	 * @param limiter Le limiteur de concurrence des exécutions ({@link AdaptiveLimiter#QUERY} par défaut,
+	 * {@link AdaptiveLimiter#NONE} pour le désactiver)
+	 * @return {@link N1QLTemplate} Un nouveau template
+	 */
+	public N1QLTemplate<T> limiter(AdaptiveLimiter limiter) {
+		return new N1QLTemplate<>(bucket, statement, target, entity, adhoc, cache, ttlMillis, consistency, writes, decoder,
+				limiter);
+	}
+
+	/**
+	 * @return La requête, avec le nom de bucket déjà positionné
+	 */
+	public String statement() {
+		return statement;
+	}
+
+	/**
+	 * Exécute la requête et renvoie les résultats en mode synchrone
+	 * @param params Les valeurs des paramètres positionnels
+	 * @return List<T> la liste des résultats
+	 */
+	public List<T> execute(Object... params) {
+		return executeAsync(params)
+			.toList()
+			.toBlocking()
+			.lastOrDefault(null);
+	}
+
+	/**
+	 * Exécute la requête et renvoie les résultats en mode asynchrone.
+	 * La requête n'est émise qu'à la souscription. Une requête en échec côté service (syntaxe, index absent,
+	 * timeout...) termine l'Observable en erreur.
+	 * @param params Les valeurs des paramètres positionnels
+	 * @return Observable<T> Un Observable des résultats
+	 */
+	public Observable<T> executeAsync(Object... params) {
+		return rows(params).map(this::decode);
+	}
+
+	/**
+	 * @return Les lignes brutes (non décodées) de la requête
+	 */
+	Observable<byte[]> rows(Object... params) {
+		final N1qlQuery query = toQuery(params);
+		return cache == null || !Consistency.cacheable(consistency)
+			? limiter.submit(() -> bucket.async()
+				.query(query)
+				.flatMap(N1QL::rawRows))
+			: cache.rows(query, tag(), ttlMillis, limiter, () -> bucket.async().query(query));
+	}
+
+	N1qlQuery toQuery(Object... params) {
+		final N1qlParams p = N1qlParams.build().adhoc(adhoc);
+		Consistency.apply(p, consistency, writes);
+		return params == null || params.length == 0
+			? N1qlQuery.simple(statement, p)
+			: N1qlQuery.parameterized(statement, JsonArray.from(params), p);
+	}
+
+	private Class<?> tag() {
+		return entity != null || target == JsonObject.class ? entity : target;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T decode(byte[] row) {
+		if (decoder != null) {
+			return decoder.call(row);
+		}
+		if (target == JsonObject.class) {
+			return (T) N1QL.bytesToJson(row);
+		}
+		return N1QL.bytesToObject(row, target);
+	}
+
+}
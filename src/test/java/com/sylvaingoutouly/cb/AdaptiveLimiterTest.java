@@ -0,0 +1,145 @@
+package com.sylvaingoutouly.cb;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import rx.Observable;
+import rx.schedulers.Schedulers;
+
+import com.couchbase.client.java.document.json.JsonObject;
+
+public class AdaptiveLimiterTest {
+
+	@Test
+	public void shouldNeverExceedLimit() {
+		final AdaptiveLimiter limiter = new AdaptiveLimiter(4, 4, 4, 1, SECONDS);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger max = new AtomicInteger();
+
+		final List<Integer> results = Observable.range(0, 100)
+			.flatMap(i -> limiter.submit(() -> Observable.just(i)
+				.doOnSubscribe(() -> max.accumulateAndGet(running.incrementAndGet(), Math::max))
+				.delay(1, MILLISECONDS, Schedulers.computation())
+				.doOnCompleted(running::decrementAndGet)))
+			.toList()
+			.toBlocking()
+			.single();
+
+		assertEquals(100, results.size());
+		assertTrue(max.get() <= 4);
+		assertEquals(0, limiter.inFlight());
+		assertEquals(0, limiter.queueDepth());
+	}
+
+	@Test
+	public void shouldIncreaseLimitOnSuccess() {
+		final AdaptiveLimiter limiter = new AdaptiveLimiter(2, 1, 10, 1, SECONDS);
+
+		Observable.range(0, 100)
+			.flatMap(i -> limiter.submit(() -> Observable.just(i)))
+			.toBlocking()
+			.last();
+
+		assertEquals(10, limiter.limit());
+	}
+
+	@Test
+	public void shouldDecreaseLimitOnTimeout() throws InterruptedException {
+		final AdaptiveLimiter limiter = new AdaptiveLimiter(10, 1, 10, 1, MILLISECONDS);
+		Thread.sleep(2);
+
+		limiter.submit(() -> Observable.<Integer>error(new TimeoutException()))
+			.onErrorResumeNext(Observable.empty())
+			.toBlocking()
+			.lastOrDefault(null);
+
+		assertEquals(9, limiter.limit());
+	}
+
+	@Test
+	public void shouldDecreaseLimitOnServiceTimeoutOnly() throws InterruptedException {
+		final AdaptiveLimiter limiter = new AdaptiveLimiter(10, 1, 10, 1, MILLISECONDS);
+		Thread.sleep(2);
+
+		limiter.submit(() -> Observable.<Integer>error(serviceError(3000, "syntax error")))
+			.onErrorResumeNext(Observable.empty())
+			.toBlocking()
+			.lastOrDefault(null);
+		assertEquals(10, limiter.limit());
+
+		limiter.submit(() -> Observable.<Integer>error(serviceError(N1QLException.SERVICE_TIMEOUT, "Timeout 1ms exceeded")))
+			.onErrorResumeNext(Observable.empty())
+			.toBlocking()
+			.lastOrDefault(null);
+		assertEquals(9, limiter.limit());
+	}
+
+	private static N1QLException serviceError(int code, String msg) {
+		return new N1QLException(Collections.singletonList(JsonObject.create().put("code", code).put("msg", msg)));
+	}
+
+	@Test(timeout = 30000)
+	public void shouldNotDeadlockBlockingCallersOnComputationThreads() {
+		final AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 1, 1, SECONDS);
+		final int callers = Runtime.getRuntime().availableProcessors() * 4;
+
+		// chaque appelant bloque un thread computation en attendant sa requête, comme un execute() synchrone
+		final List<Integer> results = Observable.range(0, callers)
+			.flatMap(i -> Observable.defer(() -> Observable.just(limiter
+					.submit(() -> Observable.just(i).delay(1, MILLISECONDS, Schedulers.io()))
+					.toBlocking()
+					.single()))
+				.subscribeOn(Schedulers.computation()))
+			.toList()
+			.toBlocking()
+			.single();
+
+		assertEquals(callers, results.size());
+		assertEquals(0, limiter.inFlight());
+	}
+
+	@Test
+	public void shouldRunOnCallerThreadWhenPermitIsFree() {
+		final AdaptiveLimiter limiter = new AdaptiveLimiter(4, 4, 4, 1, SECONDS);
+		final Thread caller = Thread.currentThread();
+
+		final Thread thread = limiter.submit(() -> Observable.just(Thread.currentThread()))
+			.toBlocking()
+			.single();
+
+		assertEquals(caller, thread);
+	}
+
+	@Test
+	public void shouldNotLimitWhenDisabled() {
+		final int result = AdaptiveLimiter.NONE.submit(() -> Observable.just(1))
+			.toBlocking()
+			.single();
+
+		assertEquals(1, result);
+		assertEquals(0, AdaptiveLimiter.NONE.queueDepth());
+	}
+
+	@Test
+	public void shouldDrainLargeQueueOfSynchronousRequests() {
+		final AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 1, 1, SECONDS);
+
+		final List<Integer> results = Observable.range(0, 100000)
+			.flatMap(i -> limiter.submit(() -> Observable.just(i)))
+			.toList()
+			.toBlocking()
+			.single();
+
+		assertEquals(100000, results.size());
+	}
+
+}
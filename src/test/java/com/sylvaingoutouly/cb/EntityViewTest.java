@@ -0,0 +1,93 @@
+package com.sylvaingoutouly.cb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.CouchbaseCluster;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.env.CouchbaseEnvironment;
+import com.couchbase.client.java.env.DefaultCouchbaseEnvironment;
+
+public class EntityViewTest {
+
+	private Bucket bucket;
+	private CouchbaseCluster cluster;
+
+	@Test
+	public void shouldRefreshIncrementally() {
+		try {
+			try {
+				N1QL.with(bucket).dropSecondaryIndex("entityViewCas");
+			}
+			catch (Exception e) {}
+
+			final EntityView<Entity> view = EntityView.byCas(bucket, Entity.class, "field1", "field2");
+			view.createIndex("entityViewCas");
+
+			view.reload();
+			final long watermark = view.watermark();
+
+			bucket.upsert(JsonDocument.create("entityViewTest",
+					JsonObject.create().put("_class", Entity.class.getName()).put("field1", "delta")));
+
+			assertEquals(1, view.refresh());
+			assertEquals("delta", view.get("entityViewTest").getField1());
+			assertTrue(view.watermark() > watermark);
+
+			// les documents relus à l'identique ne sont pas comptés
+			assertEquals(0, view.refresh());
+			assertEquals(0, view.overlap(Long.MAX_VALUE).refresh());
+			assertEquals("delta", view.get("entityViewTest").getField1());
+		}
+		catch (Throwable t) {
+			t.printStackTrace();
+			fail(t.getMessage());
+		}
+		finally {
+			bucket.remove("entityViewTest");
+		}
+	}
+
+	@Test
+	public void shouldKeepViewWhenQueryFails() {
+		final EntityView<Entity> view = EntityView.byCas(bucket, Entity.class, "field1", "field2");
+		view.reload();
+		final int size = view.view().size();
+		final long watermark = view.watermark();
+
+		final EntityView<Entity> broken = EntityView.of(bucket, Entity.class, "field1 ((", "field1");
+		try {
+			broken.reload();
+			fail("A failed query must not be reported as an empty result");
+		}
+		catch (RuntimeException e) {
+			assertEquals(0, broken.view().size());
+			assertEquals(Long.MIN_VALUE, broken.watermark());
+		}
+
+		assertEquals(size, view.view().size());
+		assertEquals(watermark, view.watermark());
+	}
+
+	@Before
+	public void before() {
+		CouchbaseEnvironment env = DefaultCouchbaseEnvironment.create();
+		cluster = CouchbaseCluster.create(env, Arrays.asList("10.142.161.101"));
+		bucket = cluster.openBucket("beer-sample");
+	}
+
+	@After
+	public void after() {
+		cluster.disconnect();
+	}
+
+}
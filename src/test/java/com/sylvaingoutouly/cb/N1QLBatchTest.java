@@ -0,0 +1,92 @@
+package com.sylvaingoutouly.cb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.CouchbaseCluster;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.env.CouchbaseEnvironment;
+import com.couchbase.client.java.env.DefaultCouchbaseEnvironment;
+
+public class N1QLBatchTest {
+
+	private Bucket bucket;
+	private CouchbaseCluster cluster;
+
+	@Test
+	public void shouldExecuteBatch() {
+		try {
+			final N1QLBatch batch = N1QLBatch.with(bucket)
+				.maxConcurrency(4)
+				.timeout(10, TimeUnit.SECONDS);
+
+			final N1QLBatch.Key<JsonObject> breweries = batch.add("select name from %bucket% where type = \"brewery\" limit 10");
+			final N1QLBatch.Key<JsonObject> beers = batch.add(N1QLTemplate.of(bucket, "select name from %bucket% where type = $1 limit 10"), "beer");
+			final N1QLBatch.Key<Entity> entities = batch.add(N1QLTemplate.entity(bucket, Entity.class, "field1", "field2").mapTo(Entity.class));
+			final N1QLBatch.Key<JsonObject> invalid = batch.add("select from where");
+
+			final N1QLBatch.Result result = batch.execute();
+
+			assertTrue(result.get(breweries).size() > 0);
+			assertTrue(result.get(beers).size() > 0);
+			assertNotNull(result.get(entities));
+			assertNull(result.error(breweries));
+
+			assertNotNull(result.error(invalid));
+			assertNull(result.get(invalid));
+			assertFalse(result.isSuccess());
+		}
+		catch (Throwable t) {
+			t.printStackTrace();
+			fail(t.getMessage());
+		}
+	}
+
+	@Test
+	public void shouldReportInvalidParameterAsFailure() {
+		try {
+			final N1QLBatch batch = N1QLBatch.with(bucket);
+
+			final N1QLTemplate<JsonObject> byType = N1QLTemplate.of(bucket, "select name from %bucket% where type = $1 limit 10");
+			final N1QLBatch.Key<JsonObject> beers = batch.add(byType, "beer");
+			final N1QLBatch.Key<JsonObject> invalid = batch.add(byType, new Object());
+			final N1QLBatch.Key<JsonObject> breweries = batch.add(byType, "brewery");
+
+			final N1QLBatch.Result result = batch.execute();
+
+			assertTrue(result.get(beers).size() > 0);
+			assertTrue(result.get(breweries).size() > 0);
+			assertNotNull(result.error(invalid));
+			assertNull(result.get(invalid));
+			assertFalse(result.isSuccess());
+		}
+		catch (Throwable t) {
+			t.printStackTrace();
+			fail(t.getMessage());
+		}
+	}
+
+	@Before
+	public void before() {
+		CouchbaseEnvironment env = DefaultCouchbaseEnvironment.create();
+		cluster = CouchbaseCluster.create(env, Arrays.asList("10.142.161.101"));
+		bucket = cluster.openBucket("beer-sample");
+	}
+
+	@After
+	public void after() {
+		cluster.disconnect();
+	}
+
+}
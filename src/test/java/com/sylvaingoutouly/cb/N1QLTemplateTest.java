@@ -0,0 +1,182 @@
+package com.sylvaingoutouly.cb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import rx.Observable;
+import rx.schedulers.Schedulers;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.CouchbaseCluster;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.env.CouchbaseEnvironment;
+import com.couchbase.client.java.env.DefaultCouchbaseEnvironment;
+
+public class N1QLTemplateTest {
+
+	private Bucket bucket;
+	private CouchbaseCluster cluster;
+
+	@Test
+	public void shouldBindBucketOnce() {
+		final N1QLTemplate<JsonObject> template = N1QLTemplate.of(bucket, "select * from %bucket% where type = $1");
+		assertEquals("select * from `beer-sample` where type = $1", template.statement());
+	}
+
+	@Test
+	public void shouldQueryWithParams() {
+		try {
+			final List<JsonObject> datas = N1QLTemplate.of(bucket, "select name from %bucket% where type = $1 limit 10")
+				.execute("brewery");
+
+			assertNotNull(datas);
+			assertTrue(datas.size() > 0);
+
+			System.out.println(datas);
+		}
+		catch (Throwable t) {
+			t.printStackTrace();
+			fail(t.getMessage());
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void shouldExecuteFromComputationThread() {
+		try {
+			final N1QLTemplate<JsonObject> template = N1QLTemplate.of(bucket, "select name from %bucket% where type = $1 limit 10");
+
+			// rafraîchissement périodique : execute() bloque un thread computation
+			final List<Integer> sizes = Observable.interval(10, TimeUnit.MILLISECONDS)
+				.take(Runtime.getRuntime().availableProcessors() * 4)
+				.flatMap(i -> Observable.defer(() -> Observable.just(template.execute("beer").size()))
+					.subscribeOn(Schedulers.computation()))
+				.toList()
+				.toBlocking()
+				.single();
+
+			assertTrue(sizes.stream().allMatch(size -> size > 0));
+		}
+		catch (Throwable t) {
+			t.printStackTrace();
+			fail(t.getMessage());
+		}
+	}
+
+	@Test
+	public void shouldQueryEntityAndMap() {
+		try {
+			final N1QLTemplate<Entity> template = N1QLTemplate.entity(bucket, Entity.class, "field1", "field2")
+				.mapTo(Entity.class)
+				.adhoc(false);
+
+			final List<Entity> datas = template.executeAsync()
+				.mergeWith(template.executeAsync())
+				.toList()
+				.toBlocking()
+				.singleOrDefault(null);
+
+			assertNotNull(datas);
+			assertTrue(datas.size() > 0);
+
+			System.out.println(datas);
+		}
+		catch (Throwable t) {
+			t.printStackTrace();
+			fail(t.getMessage());
+		}
+	}
+
+	@Test
+	public void shouldHitCache() {
+		try {
+			final N1QLCache cache = new N1QLCache(1024 * 1024);
+			final N1QLTemplate<JsonObject> template = N1QLTemplate.of(bucket, "select name from %bucket% where type = $1 limit 10")
+				.cached(cache, 1, TimeUnit.MINUTES);
+
+			final List<JsonObject> first = template.execute("brewery");
+			final List<JsonObject> second = template.execute("brewery");
+
+			assertEquals(first, second);
+			assertEquals(1, cache.hits());
+			assertEquals(1, cache.size());
+			assertTrue(cache.bytes() > 0);
+
+			cache.invalidateAll();
+			assertEquals(0, cache.bytes());
+		}
+		catch (Throwable t) {
+			t.printStackTrace();
+			fail(t.getMessage());
+		}
+	}
+
+	@Test
+	public void shouldReadOwnWrites() {
+		try {
+			final JsonDocument doc = bucket.upsert(JsonDocument.create("n1qlTemplateTest",
+					JsonObject.create().put("_class", Entity.class.getName()).put("field1", "atplus")));
+
+			final List<Entity> datas = N1QLTemplate.entity(bucket, Entity.class, "field1", "field2")
+				.mapTo(Entity.class)
+				.consistentWith(doc)
+				.execute();
+
+			assertTrue(datas.stream().anyMatch(e -> "atplus".equals(e.getField1())));
+		}
+		catch (Throwable t) {
+			t.printStackTrace();
+			fail(t.getMessage());
+		}
+		finally {
+			bucket.remove("n1qlTemplateTest");
+		}
+	}
+
+	@Test
+	public void shouldQueryCompactEntity() {
+		try {
+			final N1QLTemplate<Entity> template = N1QLTemplate.compact(bucket, Entity.class, "field1", "field2");
+			assertEquals("select raw [field1,field2] from `beer-sample` where `_class` =\"" + Entity.class.getName() + "\"",
+					template.statement());
+
+			final List<Entity> datas = template.execute();
+			final ColumnBuffer columns = ColumnBuffer.with(bucket, Entity.class)
+				.strings("field1", "field2")
+				.fetch();
+
+			assertTrue(datas.size() > 0);
+			assertEquals(datas.size(), columns.size());
+
+			System.out.println(datas);
+			System.out.println(Arrays.toString(columns.strings("field1")));
+		}
+		catch (Throwable t) {
+			t.printStackTrace();
+			fail(t.getMessage());
+		}
+	}
+
+	@Before
+	public void before() {
+		CouchbaseEnvironment env = DefaultCouchbaseEnvironment.builder().mutationTokensEnabled(true).build();
+		cluster = CouchbaseCluster.create(env, Arrays.asList("10.142.161.101"));
+		bucket = cluster.openBucket("beer-sample");
+	}
+
+	@After
+	public void after() {
+		cluster.disconnect();
+	}
+
+}
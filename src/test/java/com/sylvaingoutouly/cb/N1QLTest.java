@@ -9,6 +9,7 @@ import static org.junit.Assert.fail;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
@@ -158,6 +159,26 @@ public class N1QLTest {
 		}
 	}
 
+	@Test
+	public void shouldFailOnInvalidQueryWithOrWithoutCache() {
+		try {
+			N1QL.with(bucket)
+				.query("select from where")
+				.execute();
+			fail("A failed query must not be reported as an empty result");
+		}
+		catch (RuntimeException e) {}
+
+		try {
+			N1QL.with(bucket)
+				.query("select from where")
+				.cached(new N1QLCache(1024 * 1024), 1, TimeUnit.MINUTES)
+				.execute();
+			fail("A failed query must not be reported as an empty result");
+		}
+		catch (RuntimeException e) {}
+	}
+
 	@Test
 	public void shouldQueryAsync() {
 		try {